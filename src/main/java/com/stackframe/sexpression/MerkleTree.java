@@ -0,0 +1,165 @@
+package com.stackframe.sexpression;
+
+/*-
+ * #%L
+ * S-expression
+ * %%
+ * Copyright (C) 2019 Gene McCulley
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An S-expression annotated with a SHA-256 hash of every subtree. Two subtrees with the same hash can be assumed to be
+ * equal without walking them, which lets {@link SExpressionDiff} skip unchanged parts of large trees.
+ */
+public final class MerkleTree {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private final Object expression;
+    private final byte[] hash;
+    private final List<MerkleTree> children;
+
+    private MerkleTree(Object expression, byte[] hash, List<MerkleTree> children) {
+        this.expression = expression;
+        this.hash = hash;
+        this.children = children;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new AssertionError(e);
+        }
+    }
+
+    private static MerkleTree of(Object e, MessageDigest d) {
+        if (e instanceof List) {
+            List<?> l = (List<?>)e;
+            List<MerkleTree> c = new ArrayList<>(l.size());
+            for (Object o : l) {
+                c.add(of(o, d));
+            }
+
+            d.update((byte)'(');
+            for (MerkleTree t : c) {
+                d.update(t.hash);
+            }
+
+            return new MerkleTree(e, d.digest(), Collections.unmodifiableList(c));
+        } else if (e instanceof String) {
+            d.update((byte)'s');
+            // Hash the UTF-16 code units directly. Encoding to a charset would replace unpaired surrogates.
+            String s = (String)e;
+            ByteBuffer b = ByteBuffer.allocate(s.length() * Character.BYTES);
+            b.asCharBuffer().put(s);
+            d.update(b.array());
+        } else if (e instanceof Long) {
+            d.update((byte)'l');
+            d.update(ByteBuffer.allocate(Long.BYTES).putLong((Long)e).array());
+        } else if (e instanceof Double) {
+            d.update((byte)'d');
+            d.update(ByteBuffer.allocate(Long.BYTES).putLong(Double.doubleToLongBits((Double)e)).array());
+        } else if (e instanceof BigInteger) {
+            d.update((byte)'b');
+            d.update(((BigInteger)e).toByteArray());
+        } else {
+            throw new IllegalArgumentException(
+                    "unexpected type in S-expression: " + (e == null ? "null" : e.getClass().getName()));
+        }
+
+        return new MerkleTree(e, d.digest(), Collections.emptyList());
+    }
+
+    /**
+     * Compute the hashes for an S-expression. This walks the whole tree once. Keep the result around to avoid hashing
+     * the same version again when it is compared with the next one.
+     *
+     * @param e an S-expression as returned by {@link SExpression#parse(String)}
+     * @return the hashed tree
+     * @throws IllegalArgumentException if the tree contains something other than a String, Long, Double, BigInteger, or List
+     */
+    public static MerkleTree of(Object e) {
+        return of(e, newDigest());
+    }
+
+    /**
+     * @return the S-expression this tree was computed from
+     */
+    public Object getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return a copy of the SHA-256 hash of this subtree
+     */
+    public byte[] getHash() {
+        return hash.clone();
+    }
+
+    /**
+     * @return the hashed children if this is a list, or an empty list if this is an atom
+     */
+    public List<MerkleTree> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return true if this subtree is a list, false if it is an atom
+     */
+    public boolean isList() {
+        return expression instanceof List;
+    }
+
+    /**
+     * Compare hashes with another tree.
+     *
+     * @param t the tree to compare with
+     * @return true if both trees have the same hash and can therefore be assumed to be equal
+     */
+    public boolean hashEquals(MerkleTree t) {
+        return Arrays.equals(hash, t.hash);
+    }
+
+    /**
+     * @return the hash wrapped so that it can be used as a key in a hash table
+     */
+    ByteBuffer hashKey() {
+        return ByteBuffer.wrap(hash).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return SExpression.toCharSequence(expression).toString();
+    }
+
+}
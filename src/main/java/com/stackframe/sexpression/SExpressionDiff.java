@@ -0,0 +1,545 @@
+package com.stackframe.sexpression;
+
+/*-
+ * #%L
+ * S-expression
+ * %%
+ * Copyright (C) 2019 Gene McCulley
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A utility class for computing the differences between two S-expressions. Subtrees are compared by their
+ * {@link MerkleTree} hashes, so identical subtrees are skipped without being walked and the cost of a comparison
+ * depends on how much changed rather than on how large the trees are.
+ */
+public class SExpressionDiff {
+
+    /**
+     * A single step of an edit script. Edits are meant to be applied in the order they are returned by
+     * {@link SExpressionDiff#diff(MerkleTree, MerkleTree)}; each path refers to the tree as it is after all of the
+     * previous edits have been applied. The script is ordered so that edits to a list come from the last index to the
+     * first, which means each path also holds in the original tree.
+     */
+    public static final class Edit {
+
+        /**
+         * The kind of change made by an edit.
+         */
+        public enum Type {
+            /** Insert a new element so that it ends up at the path. */
+            INSERT,
+            /** Remove the element at the path. */
+            DELETE,
+            /** Replace the element at the path with a new one. */
+            REPLACE
+        }
+
+        private final Type type;
+        private final List<Integer> path;
+        private final Object oldValue;
+        private final Object newValue;
+
+        Edit(Type type, List<Integer> path, Object oldValue, Object newValue) {
+            this.type = type;
+            this.path = Collections.unmodifiableList(new ArrayList<>(path));
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        /**
+         * @return the kind of change this edit makes
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the indices to follow from the root to reach the edited element. An empty path means the root itself.
+         */
+        public List<Integer> getPath() {
+            return path;
+        }
+
+        /**
+         * @return the element that is removed or replaced, or null for an insert
+         */
+        public Object getOldValue() {
+            return oldValue;
+        }
+
+        /**
+         * @return the element that is inserted or substituted, or null for a delete
+         */
+        public Object getNewValue() {
+            return newValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Edit)) {
+                return false;
+            }
+
+            Edit e = (Edit)o;
+            return type == e.type && path.equals(e.path) && Objects.equals(oldValue, e.oldValue) &&
+                   Objects.equals(newValue, e.newValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, path, oldValue, newValue);
+        }
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case INSERT:
+                    return String.format("INSERT %s %s", path, SExpression.toCharSequence(newValue));
+                case DELETE:
+                    return String.format("DELETE %s %s", path, SExpression.toCharSequence(oldValue));
+                default:
+                    return String.format("REPLACE %s %s %s", path, SExpression.toCharSequence(oldValue),
+                                         SExpression.toCharSequence(newValue));
+            }
+        }
+
+    }
+
+    /**
+     * The largest number of edits for which a list is aligned exactly. Aligning a list that needs d edits takes O(d^2)
+     * memory and at most O((n + m) d) comparisons, so beyond this the list is split around elements that occur exactly
+     * once in both versions.
+     */
+    private static final int MAX_ALIGNMENT_COST = 512;
+
+    /**
+     * The number of edits aligned at a time when a list is aligned greedily. Each step costs O(d^2) and covers at least
+     * d elements, so a smaller step keeps the cost per element down.
+     */
+    private static final int GREEDY_ALIGNMENT_COST = 64;
+
+    private static final byte NONE = 0;
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    private static final byte REPLACE = 3;
+
+    private SExpressionDiff() {
+        // Inhibit construction of utility class.
+    }
+
+    private static int reached(int[] r, int d, int k) {
+        return k < -d || k > d ? -1 : r[k + d];
+    }
+
+    /**
+     * Align a[aStart, aStart + n) with b[bStart, bStart + m) using the fewest insertions, deletions, and replacements,
+     * each counting as one edit. This is the diagonal algorithm of Ukkonen and of Landau and Vishkin: for each number
+     * of edits d it records the furthest x reached on every diagonal k = x - y and then follows equal elements along
+     * that diagonal, so the work depends on d rather than on n * m.
+     *
+     * @param end if not null, and more than maxCost edits are needed, align the ranges only as far as maxCost edits can
+     *            reach and store how many elements of a and of b that covers here
+     * @return the edits in order as {type, index in a, index in b}, where the index in a of an insertion is the
+     * position it is inserted at. Returns null if more than maxCost edits are needed and end is null.
+     */
+    private static List<int[]> alignExactly(List<MerkleTree> a, int aStart, int n, List<MerkleTree> b, int bStart,
+                                            int m, int maxCost, int[] end) {
+        List<int[]> reached = new ArrayList<>(); // reached.get(d)[k + d] is the furthest x on diagonal k after d edits.
+        List<byte[]> steps = new ArrayList<>(); // steps.get(d)[k + d] is the last edit taken to get there.
+        int goal = n - m;
+        int limit = Math.min(maxCost, Math.max(n, m));
+        for (int d = 0; d <= limit; d++) {
+            int[] r = new int[2 * d + 1];
+            byte[] s = new byte[2 * d + 1];
+            int[] previous = d == 0 ? null : reached.get(d - 1);
+            for (int k = -d; k <= d; k++) {
+                int x = d == 0 ? 0 : -1;
+                byte step = NONE;
+                if (d > 0) {
+                    int p = reached(previous, d - 1, k);
+                    if (p >= 0) {
+                        x = p;
+                        if (p < n && p - k < m) {
+                            x = p + 1;
+                            step = REPLACE;
+                        }
+                    }
+
+                    p = reached(previous, d - 1, k - 1);
+                    if (p >= 0 && p < n && p + 1 > x) {
+                        x = p + 1;
+                        step = DELETE;
+                    }
+
+                    p = reached(previous, d - 1, k + 1);
+                    if (p >= 0 && p - k - 1 < m && p > x) {
+                        x = p;
+                        step = INSERT;
+                    }
+                }
+
+                if (x >= 0) {
+                    int y = x - k;
+                    while (x < n && y < m && a.get(aStart + x).hashEquals(b.get(bStart + y))) {
+                        x++;
+                        y++;
+                    }
+                }
+
+                r[k + d] = x;
+                s[k + d] = step;
+            }
+
+            reached.add(r);
+            steps.add(s);
+            if (Math.abs(goal) <= d && r[goal + d] >= n) {
+                if (end != null) {
+                    end[0] = n;
+                    end[1] = m;
+                }
+
+                return traceback(reached, steps, d, goal, aStart, bStart);
+            }
+
+            if (d == limit && end != null) {
+                int best = -d;
+                for (int k = -d; k <= d; k++) {
+                    if (2 * r[k + d] - k > 2 * r[best + d] - best) {
+                        best = k;
+                    }
+                }
+
+                end[0] = r[best + d];
+                end[1] = r[best + d] - best;
+                return traceback(reached, steps, d, best, aStart, bStart);
+            }
+        }
+
+        return null;
+    }
+
+    private static List<int[]> traceback(List<int[]> reached, List<byte[]> steps, int d, int k, int aStart,
+                                         int bStart) {
+        List<int[]> edits = new ArrayList<>();
+        for (int i = d; i > 0; i--) {
+            byte step = steps.get(i)[k + i];
+            if (step == DELETE) {
+                k--;
+            } else if (step == INSERT) {
+                k++;
+            }
+
+            int x = reached(reached.get(i - 1), i - 1, k);
+            if (step == REPLACE) {
+                edits.add(new int[]{REPLACE, aStart + x, bStart + x - k});
+            } else if (step == DELETE) {
+                edits.add(new int[]{DELETE, aStart + x, -1});
+            } else if (step == INSERT) {
+                edits.add(new int[]{INSERT, aStart + x, bStart + x - k});
+            }
+        }
+
+        Collections.reverse(edits);
+        return edits;
+    }
+
+    /**
+     * Align two ranges GREEDY_ALIGNMENT_COST edits at a time, each time keeping the alignment that got furthest and
+     * starting over from there. This is only used for ranges that need many edits and have no element that occurs
+     * exactly once in each.
+     */
+    private static void alignGreedily(List<MerkleTree> a, int aStart, int aEnd, List<MerkleTree> b, int bStart,
+                                      int bEnd, List<int[]> edits) {
+        int[] end = new int[2];
+        while (aStart < aEnd || bStart < bEnd) {
+            edits.addAll(alignExactly(a, aStart, aEnd - aStart, b, bStart, bEnd - bStart, GREEDY_ALIGNMENT_COST,
+                                        end));
+            aStart += end[0];
+            bStart += end[1];
+        }
+    }
+
+    /**
+     * Match up the elements that occur exactly once in each range, keep the longest run of them that appears in the
+     * same order in both, and align the stretches between them separately. This is the patience diff strategy.
+     *
+     * @return false if no element occurs exactly once in each range
+     */
+    private static boolean alignAroundUniqueElements(List<MerkleTree> a, int aStart, int aEnd, List<MerkleTree> b,
+                                                     int bStart, int bEnd, List<int[]> edits) {
+        Map<ByteBuffer, int[]> seen = new HashMap<>(); // {count in a, index in a, count in b, index in b}
+        for (int i = aStart; i < aEnd; i++) {
+            int[] s = seen.computeIfAbsent(a.get(i).hashKey(), h -> new int[4]);
+            s[0]++;
+            s[1] = i;
+        }
+
+        for (int j = bStart; j < bEnd; j++) {
+            int[] s = seen.get(b.get(j).hashKey());
+            if (s != null) {
+                s[2]++;
+                s[3] = j;
+            }
+        }
+
+        List<int[]> unique = new ArrayList<>();
+        for (int i = aStart; i < aEnd; i++) {
+            int[] s = seen.get(a.get(i).hashKey());
+            if (s[0] == 1 && s[2] == 1) {
+                unique.add(new int[]{i, s[3]});
+            }
+        }
+
+        if (unique.isEmpty()) {
+            return false;
+        }
+
+        // Find the longest increasing run of indices in b by patience sorting.
+        int[] tails = new int[unique.size()];
+        int[] previous = new int[unique.size()];
+        int length = 0;
+        for (int u = 0; u < unique.size(); u++) {
+            int j = unique.get(u)[1];
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (unique.get(tails[middle])[1] < j) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            previous[u] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = u;
+            if (low == length) {
+                length++;
+            }
+        }
+
+        int[][] anchors = new int[length][];
+        for (int u = tails[length - 1], i = length - 1; u >= 0; u = previous[u], i--) {
+            anchors[i] = unique.get(u);
+        }
+
+        int i = aStart;
+        int j = bStart;
+        for (int[] anchor : anchors) {
+            align(a, i, anchor[0], b, j, anchor[1], edits);
+            i = anchor[0] + 1;
+            j = anchor[1] + 1;
+        }
+
+        align(a, i, aEnd, b, j, bEnd, edits);
+        return true;
+    }
+
+    /**
+     * Align a[aStart, aEnd) with b[bStart, bEnd), appending the edits in order as {type, index in a, index in b}. The
+     * index in a of an insertion is the position it is inserted at.
+     */
+    private static void align(List<MerkleTree> a, int aStart, int aEnd, List<MerkleTree> b, int bStart, int bEnd,
+                              List<int[]> edits) {
+        while (aStart < aEnd && bStart < bEnd && a.get(aStart).hashEquals(b.get(bStart))) {
+            aStart++;
+            bStart++;
+        }
+
+        while (aEnd > aStart && bEnd > bStart && a.get(aEnd - 1).hashEquals(b.get(bEnd - 1))) {
+            aEnd--;
+            bEnd--;
+        }
+
+        List<int[]> exact = alignExactly(a, aStart, aEnd - aStart, b, bStart, bEnd - bStart, MAX_ALIGNMENT_COST,
+                                         null);
+        if (exact != null) {
+            edits.addAll(exact);
+        } else if (!alignAroundUniqueElements(a, aStart, aEnd, b, bStart, bEnd, edits)) {
+            alignGreedily(a, aStart, aEnd, b, bStart, bEnd, edits);
+        }
+    }
+
+    /**
+     * Emit the single edit that turns a into b. If both are lists that differ by exactly one insertion, deletion, or
+     * replacement of an element, that edit is emitted further down the tree; otherwise a is replaced as a whole.
+     */
+    private static void replace(MerkleTree a, MerkleTree b, List<Integer> path, List<Edit> edits) {
+        if (a.isList() && b.isList()) {
+            List<MerkleTree> ac = a.getChildren();
+            List<MerkleTree> bc = b.getChildren();
+            int start = 0;
+            int aEnd = ac.size();
+            int bEnd = bc.size();
+            while (start < aEnd && start < bEnd && ac.get(start).hashEquals(bc.get(start))) {
+                start++;
+            }
+
+            while (aEnd > start && bEnd > start && ac.get(aEnd - 1).hashEquals(bc.get(bEnd - 1))) {
+                aEnd--;
+                bEnd--;
+            }
+
+            List<int[]> aligned = alignExactly(ac, start, aEnd - start, bc, start, bEnd - start, 1, null);
+            if (aligned != null) {
+                emit(ac, bc, aligned, path, edits);
+                return;
+            }
+        }
+
+        edits.add(new Edit(Edit.Type.REPLACE, path, a.getExpression(), b.getExpression()));
+    }
+
+    private static void emit(List<MerkleTree> ac, List<MerkleTree> bc, List<int[]> aligned, List<Integer> path,
+                             List<Edit> edits) {
+        // Emit from last to first so that earlier indices stay valid.
+        for (int i = aligned.size() - 1; i >= 0; i--) {
+            int[] e = aligned.get(i);
+            path.add(e[1]);
+            switch (e[0]) {
+                case INSERT:
+                    edits.add(new Edit(Edit.Type.INSERT, path, null, bc.get(e[2]).getExpression()));
+                    break;
+                case DELETE:
+                    edits.add(new Edit(Edit.Type.DELETE, path, ac.get(e[1]).getExpression(), null));
+                    break;
+                default:
+                    replace(ac.get(e[1]), bc.get(e[2]), path, edits);
+                    break;
+            }
+
+            path.remove(path.size() - 1);
+        }
+    }
+
+    /**
+     * Compute an edit script that turns one S-expression into another. Subtrees with equal hashes are skipped and common
+     * leading and trailing elements of lists are trimmed. The elements of the root list are aligned with the fewest
+     * insertions, deletions, and replacements. Each replaced element becomes exactly one edit: if it differs from its
+     * counterpart by a single change further down, the edit is made there, and otherwise the element is replaced as a
+     * whole. The script is therefore the shortest one that does not replace the root itself, as long as the root list
+     * needs at most 512 edits. Beyond that, the root list is split around elements that occur exactly once in both
+     * versions and the stretches between them are aligned separately, or aligned 64 edits at a time if there are no
+     * such elements, so the script stays proportional to the change but may not be the shortest.
+     *
+     * @param a the original tree
+     * @param b the new tree
+     * @return the edits, in the order they should be applied, that turn a into b. The list is empty if they are equal.
+     */
+    public static List<Edit> diff(MerkleTree a, MerkleTree b) {
+        List<Edit> edits = new ArrayList<>();
+        if (a.hashEquals(b)) {
+            return edits;
+        }
+
+        if (!a.isList() || !b.isList()) {
+            edits.add(new Edit(Edit.Type.REPLACE, Collections.emptyList(), a.getExpression(), b.getExpression()));
+            return edits;
+        }
+
+        List<MerkleTree> ac = a.getChildren();
+        List<MerkleTree> bc = b.getChildren();
+        List<int[]> aligned = new ArrayList<>();
+        align(ac, 0, ac.size(), bc, 0, bc.size(), aligned);
+        emit(ac, bc, aligned, new ArrayList<>(), edits);
+        return edits;
+    }
+
+    /**
+     * Compute an edit script that turns one S-expression into another. This hashes both trees first; when comparing a
+     * series of versions, hash each version once with {@link MerkleTree#of(Object)} and use
+     * {@link #diff(MerkleTree, MerkleTree)} instead.
+     *
+     * @param a the original tree
+     * @param b the new tree
+     * @return the edits, in the order they should be applied, that turn a into b. The list is empty if they are equal.
+     * @throws IllegalArgumentException if either tree contains something other than a String, Long, Double, BigInteger, or List
+     */
+    public static List<Edit> diff(Object a, Object b) {
+        return diff(MerkleTree.of(a), MerkleTree.of(b));
+    }
+
+    private static Object apply(Object e, Edit edit, int depth) {
+        List<Integer> path = edit.getPath();
+        if (depth == path.size()) {
+            if (edit.getType() != Edit.Type.REPLACE) {
+                throw new IllegalArgumentException("only a replacement can have an empty path: " + edit);
+            }
+
+            return edit.getNewValue();
+        }
+
+        if (!(e instanceof List)) {
+            throw new IllegalArgumentException("path does not lead to a list: " + edit);
+        }
+
+        List<Object> l = new ArrayList<>((List<?>)e);
+        int index = path.get(depth);
+        if (depth < path.size() - 1) {
+            l.set(index, apply(l.get(index), edit, depth + 1));
+        } else if (edit.getType() == Edit.Type.INSERT) {
+            l.add(index, edit.getNewValue());
+        } else if (edit.getType() == Edit.Type.DELETE) {
+            l.remove(index);
+        } else {
+            l.set(index, edit.getNewValue());
+        }
+
+        if (l.isEmpty()) {
+            return Collections.emptyList();
+        } else {
+            return Collections.unmodifiableList(l);
+        }
+    }
+
+    /**
+     * Apply an edit script to an S-expression. The original is left untouched; lists along the path of each edit are
+     * copied.
+     *
+     * @param e     the S-expression to edit
+     * @param edits the edits as returned by {@link #diff(MerkleTree, MerkleTree)}
+     * @return the edited S-expression
+     * @throws IllegalArgumentException  if an edit does not fit the tree
+     * @throws IndexOutOfBoundsException if an edit refers to an element that does not exist
+     */
+    public static Object apply(Object e, List<Edit> edits) {
+        Object result = e;
+        for (Edit edit : edits) {
+            result = apply(result, edit, 0);
+        }
+
+        return result;
+    }
+
+}
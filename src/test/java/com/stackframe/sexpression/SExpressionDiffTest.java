@@ -0,0 +1,359 @@
+package com.stackframe.sexpression;
+
+/*-
+ * #%L
+ * S-expression
+ * %%
+ * Copyright (C) 2019 Gene McCulley
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit test for SExpressionDiff.
+ */
+public class SExpressionDiffTest {
+
+    private static List<SExpressionDiff.Edit> assertDiff(String a, String b) throws ParseException {
+        Object x = SExpression.parse(a);
+        Object y = SExpression.parse(b);
+        List<SExpressionDiff.Edit> edits = SExpressionDiff.diff(x, y);
+        assertEquals(y, SExpressionDiff.apply(x, edits));
+        return edits;
+    }
+
+    private static Object randomTree(Random r, int depth) {
+        if (depth == 0 || r.nextInt(3) == 0) {
+            switch (r.nextInt(4)) {
+                case 0:
+                    return "s" + r.nextInt(3);
+                case 1:
+                    return (long)r.nextInt(3);
+                case 2:
+                    return (double)r.nextInt(3);
+                default:
+                    return "a b";
+            }
+        }
+
+        List<Object> l = new ArrayList<>();
+        int n = r.nextInt(6);
+        for (int i = 0; i < n; i++) {
+            l.add(randomTree(r, depth - 1));
+        }
+
+        return l;
+    }
+
+    private static Object mutate(Random r, Object e) {
+        if (!(e instanceof List) || r.nextInt(4) == 0) {
+            return r.nextBoolean() ? e : randomTree(r, 2);
+        }
+
+        List<Object> l = new ArrayList<>((List<?>)e);
+        int n = r.nextInt(4);
+        for (int i = 0; i < n; i++) {
+            int op = r.nextInt(3);
+            if (op == 0) {
+                l.add(r.nextInt(l.size() + 1), randomTree(r, 2));
+            } else if (!l.isEmpty()) {
+                int j = r.nextInt(l.size());
+                if (op == 1) {
+                    l.remove(j);
+                } else {
+                    l.set(j, mutate(r, l.get(j)));
+                }
+            }
+        }
+
+        return l;
+    }
+
+    private static int editDistance(List<?> a, List<?> b) {
+        int[][] t = new int[a.size() + 1][b.size() + 1];
+        for (int i = 0; i <= a.size(); i++) {
+            for (int j = 0; j <= b.size(); j++) {
+                if (i == 0 || j == 0) {
+                    t[i][j] = i + j;
+                } else {
+                    t[i][j] = Math.min(Math.min(t[i - 1][j], t[i][j - 1]) + 1,
+                                       t[i - 1][j - 1] + (a.get(i - 1).equals(b.get(j - 1)) ? 0 : 1));
+                }
+            }
+        }
+
+        return t[a.size()][b.size()];
+    }
+
+    @Test
+    public void testEqual() throws ParseException {
+        assertEquals(Collections.emptyList(), assertDiff("(foo (bar 1 2.5) baz)", "(foo (bar 1 2.5) baz)"));
+    }
+
+    @Test
+    public void testAtoms() throws ParseException {
+        assertEquals(Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Collections.emptyList(), "foo", "bar")),
+                     assertDiff("foo", "bar"));
+    }
+
+    @Test
+    public void testTypesDiffer() throws ParseException {
+        assertEquals(Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Arrays.asList(0, 0), 1L, 1.0)),
+                     assertDiff("(1)", "(1.0)"));
+    }
+
+    @Test
+    public void testInsert() throws ParseException {
+        assertEquals(Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.INSERT, Arrays.asList(0, 1), null, "x")),
+                     assertDiff("(a b c)", "(a x b c)"));
+    }
+
+    @Test
+    public void testDelete() throws ParseException {
+        assertEquals(Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.DELETE, Arrays.asList(0, 2), "c", null)),
+                     assertDiff("(a b c d)", "(a b d)"));
+    }
+
+    @Test
+    public void testNestedReplace() throws ParseException {
+        assertEquals(Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Arrays.asList(0, 1, 2), 3L, 4L)),
+                     assertDiff("(a (b c 3) d)", "(a (b c 4) d)"));
+    }
+
+    @Test
+    public void testMixed() throws ParseException {
+        assertEquals(Arrays.asList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.INSERT, Arrays.asList(4, 1), null, "g"),
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Arrays.asList(3, 1, 1), "e", "x"),
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.DELETE, Collections.singletonList(1),
+                                         Collections.singletonList("b"), null)),
+                     assertDiff("(a) (b) (c) (d (d e)) (f)", "(a) (c) (d (d x)) (f g)"));
+    }
+
+    @Test
+    public void testReplaceWholeList() throws ParseException {
+        assertEquals(Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Collections.singletonList(0),
+                                         Arrays.asList("p", "q", "r", "s", "t"),
+                                         Arrays.asList("a", "b", "c", "d", "e"))),
+                     assertDiff("(p q r s t)", "(a b c d e)"));
+        assertEquals(Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Collections.singletonList(0),
+                                         Arrays.asList("a", "b", "c", "d"), Arrays.asList("a", "x", "c", "y"))),
+                     assertDiff("(a b c d)", "(a x c y)"));
+    }
+
+    @Test
+    public void testManyChanges() throws ParseException {
+        assertDiff("(a b c d e f) (g (h i)) j", "(x a c e f y z) j (g (h))");
+        assertDiff("(a b c)", "(d e f g h)");
+        assertDiff("()", "(a (b) c)");
+        assertDiff("(a (b) c)", "()");
+    }
+
+    @Test
+    public void testLargeTree() {
+        List<Object> a = new ArrayList<>();
+        for (long i = 0; i < 100000; i++) {
+            a.add(Arrays.asList("key", i));
+        }
+
+        List<Object> b = new ArrayList<>(a);
+        b.set(5000, Arrays.asList("key", -1L));
+        b.remove(10);
+        b.add(75000, "new");
+        b.set(95000, Arrays.asList("key", -2L));
+
+        MerkleTree x = MerkleTree.of(a);
+        MerkleTree y = MerkleTree.of(b);
+        assertEquals(Arrays.asList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Arrays.asList(95000, 1), 95000L, -2L),
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.INSERT, Collections.singletonList(75001), null,
+                                         "new"),
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Arrays.asList(5000, 1), 5000L, -1L),
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.DELETE, Collections.singletonList(10),
+                                         Arrays.asList("key", 10L), null)),
+                     SExpressionDiff.diff(x, y));
+    }
+
+    @Test
+    public void testWideRewrite() {
+        // Every entry changes. Holding one alignment step per edit for this many edits would not fit in a normal heap.
+        int n = 50000;
+        List<Object> a = new ArrayList<>();
+        List<Object> b = new ArrayList<>();
+        for (long i = 0; i < n; i++) {
+            a.add(Arrays.asList("key", i, "v1"));
+            b.add(Arrays.asList("key", i, "v2"));
+        }
+
+        MerkleTree x = MerkleTree.of(a);
+        MerkleTree y = MerkleTree.of(b);
+        List<SExpressionDiff.Edit> edits = SExpressionDiff.diff(x, y);
+        assertEquals(n, edits.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Arrays.asList(n - 1 - i, 2), "v1",
+                                                  "v2"), edits.get(i));
+        }
+    }
+
+    @Test
+    public void testMinimal() throws ParseException {
+        assertEquals(6, SExpressionDiff.diff(Arrays.asList("s2", "s2", "s0"),
+                                             Arrays.asList("s1", "s1", "s1", "s1", "s1", "s2")).size());
+
+        Random r = new Random(0);
+        for (int i = 0; i < 5000; i++) {
+            List<Object> a = new ArrayList<>();
+            List<Object> b = new ArrayList<>();
+            int n = r.nextInt(12);
+            int m = r.nextInt(12);
+            for (int j = 0; j < n; j++) {
+                a.add("s" + r.nextInt(3));
+            }
+
+            for (int j = 0; j < m; j++) {
+                b.add("s" + r.nextInt(3));
+            }
+
+            List<SExpressionDiff.Edit> edits = SExpressionDiff.diff(a, b);
+            assertEquals(b, SExpressionDiff.apply(a, edits));
+            assertEquals(editDistance(a, b), edits.size());
+        }
+    }
+
+    @Test
+    public void testRandomRoundTrip() {
+        Random r = new Random(0);
+        for (int i = 0; i < 5000; i++) {
+            Object a = randomTree(r, 4);
+            Object b = r.nextInt(5) == 0 ? randomTree(r, 4) : mutate(r, a);
+            List<SExpressionDiff.Edit> edits = SExpressionDiff.diff(a, b);
+            assertEquals(b, SExpressionDiff.apply(a, edits));
+            if (a instanceof List && b instanceof List) {
+                assertEquals(editDistance((List<?>)a, (List<?>)b), edits.size());
+            } else {
+                assertEquals(a.equals(b) ? 0 : 1, edits.size());
+            }
+        }
+    }
+
+    private static List<Object> keys(int n) {
+        List<Object> l = new ArrayList<>();
+        for (long i = 0; i < n; i++) {
+            l.add(Arrays.asList("key", i));
+        }
+
+        return l;
+    }
+
+    @Test
+    public void testShiftWithManyChanges() {
+        // More changes than are aligned exactly, plus a shift of everything after the first one.
+        List<Object> a = keys(100000);
+        List<Object> b = new ArrayList<>(a);
+        for (int i = 0; i < 600; i++) {
+            b.set(i * 150 + 7, Arrays.asList("key", -1L));
+        }
+
+        b.add(0, "new");
+        List<SExpressionDiff.Edit> edits = SExpressionDiff.diff(a, b);
+        assertEquals(601, edits.size());
+        assertEquals(b, SExpressionDiff.apply(a, edits));
+
+        b = new ArrayList<>(a);
+        for (int i = 0; i < 700; i++) {
+            b.add(i * 140, "new");
+        }
+
+        edits = SExpressionDiff.diff(a, b);
+        assertEquals(700, edits.size());
+        for (SExpressionDiff.Edit e : edits) {
+            assertEquals(SExpressionDiff.Edit.Type.INSERT, e.getType());
+        }
+    }
+
+    @Test
+    public void testRepeatedElementsWithManyChanges() {
+        // No element occurs only once, so the list cannot be split around unique elements.
+        List<Object> a = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            a.add(i % 2 == 0 ? "x" : "y");
+        }
+
+        List<Object> b = new ArrayList<>(a);
+        for (int i = 0; i < 600; i++) {
+            b.set(i * 30 + 1, "z");
+        }
+
+        b.add(0, "w");
+        List<SExpressionDiff.Edit> edits = SExpressionDiff.diff(a, b);
+        assertTrue(edits.size() <= 601);
+        assertEquals(b, SExpressionDiff.apply(a, edits));
+    }
+
+    @Test
+    public void testUnpairedSurrogate() {
+        assertEquals(Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.REPLACE, Collections.singletonList(0), "x\uD800",
+                                         "x?")),
+                     SExpressionDiff.diff(Collections.singletonList("x\uD800"), Collections.singletonList("x?")));
+    }
+
+    @Test
+    public void testHash() throws ParseException {
+        MerkleTree x = MerkleTree.of(SExpression.parse("(a (b 1) c)"));
+        assertTrue(x.hashEquals(MerkleTree.of(SExpression.parse("(a (b 1) c)"))));
+        assertFalse(x.hashEquals(MerkleTree.of(SExpression.parse("(a (b 1.0) c)"))));
+        assertFalse(x.hashEquals(MerkleTree.of(SExpression.parse("(a (b 1 c))"))));
+        assertTrue(x.getChildren().get(0).getChildren().get(1)
+                    .hashEquals(MerkleTree.of(SExpression.parse("(b 1)")).getChildren().get(0)));
+    }
+
+    @Test
+    public void testBadPath() {
+        assertThrows(IllegalArgumentException.class, () -> SExpressionDiff.apply("foo", Collections.singletonList(
+                new SExpressionDiff.Edit(SExpressionDiff.Edit.Type.DELETE, Collections.singletonList(0), "foo", null))));
+    }
+
+    @Test
+    public void testUnexpectedType() {
+        assertThrows(IllegalArgumentException.class, () -> MerkleTree.of(Collections.singletonList(new Object())));
+    }
+
+}